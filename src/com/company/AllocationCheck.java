@@ -0,0 +1,87 @@
+package com.company;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Regression check that the steady state playback loop allocates nothing: the DisplayStateTable lookup,
+ * change detection, AV clock read and hand off to the output in SubtitleSequencer.tick().
+ *
+ * Warms the loop up, then counts the bytes this thread allocates over many ticks (seeking through a
+ * synthetic title so that display changes happen as well as repeats) and exits with status 1 if there
+ * were any.
+ *
+ * Usage: AllocationCheck [ticks]
+ * Also run it with -Xint (and a smaller tick count): the JIT's escape analysis can hide allocations that
+ * don't leave the loop today, but would turn into garbage as soon as inlining changes.
+ */
+public class AllocationCheck {
+    static final int WARMUP_TICKS = 200000;
+
+    // Output that only remembers what it was last handed, so the check measures the loop and nothing else
+    private static class LastShownOutput implements SubtitleSequencer.Output {
+        DisplayEvent last;
+
+        public void show(DisplayEvent event) {
+            last = event;
+        }
+    }
+
+    public static void main(String[] args) throws DisplayStateTable.DisplayStateException {
+        int ticks = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+            System.out.println("Thread allocation counting not supported on this JVM, can't check");
+            System.exit(1);
+        }
+        com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+        allocation.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+
+        DisplayStateTable table = DisplayStateTable.parse(SyntheticSrt.generate(2000, 1));
+        AvTracker tracker = new AvTracker();
+        SubtitleSequencer sequencer = new SubtitleSequencer(tracker, table, new LastShownOutput());
+        long end = table.getLastEvent().msecOffset + 1000;
+
+        run(sequencer, tracker, end, WARMUP_TICKS);
+
+        // Reading the counter can cost a few bytes itself, find out how many so we don't blame the loop
+        long overhead = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            long before = allocation.getThreadAllocatedBytes(thread);
+            overhead = Math.min(overhead, allocation.getThreadAllocatedBytes(thread) - before);
+        }
+
+        // Measure a few times and keep the best, the odd one off allocation from the JIT or the runtime
+        // (deoptimising, resizing something) isn't the loop's fault but a steady per tick cost shows up every time
+        long allocated = Long.MAX_VALUE;
+        long changes = 0;
+        for (int attempt = 0; attempt < 3 && allocated > 0; attempt++) {
+            long before = allocation.getThreadAllocatedBytes(thread);
+            changes = run(sequencer, tracker, end, ticks);
+            allocated = Math.min(allocated, allocation.getThreadAllocatedBytes(thread) - before - overhead);
+        }
+
+        System.out.printf("%d ticks, %d display changes, %d bytes allocated (%.4f bytes/tick)%n",
+                ticks, changes, allocated, (double) allocated / ticks);
+        if (allocated > 0) {
+            System.out.println("FAIL: the playback loop allocates");
+            System.exit(1);
+        }
+        System.out.println("PASS");
+    }
+
+    // Step through the title 37ms at a time, wrapping at the end, ticking as we go
+    private static long run(SubtitleSequencer sequencer, AvTracker tracker, long end, int ticks)
+            throws DisplayStateTable.DisplayStateException {
+        long changes = 0;
+        for (int i = 0; i < ticks; i++) {
+            tracker.seek((i * 37L) % end);
+            if (sequencer.tick() != null)
+                changes++;
+        }
+        return changes;
+    }
+}
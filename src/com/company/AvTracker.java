@@ -4,13 +4,54 @@ package com.company;
  * Created by adam on 20/01/17.
  */
 public class AvTracker {
-    // Just a stub for now but will be used to encapsulate the mapping of Audio to AV and timestamp
-    long startTime;
+    // Encapsulates the mapping of Audio to AV timestamp. For now the AV clock is driven off the wall clock
+    // but playback can be sought, paused and run at a different rate like a player would
+    long startTime;      // wall clock time that avBase applies from
+    long avBase = 0;     // AV position at startTime
+    double rate = 1.0;   // AV milliseconds per wall clock millisecond
+    boolean paused = false;
+
     public AvTracker() {
         startTime = System.currentTimeMillis();
     }
 
-    public long getAvMilliseconds() {
-        return System.currentTimeMillis() - startTime;
+    public synchronized long getAvMilliseconds() {
+        if (paused)
+            return avBase;
+        return avBase + (long)((System.currentTimeMillis() - startTime) * rate);
+    }
+
+    public synchronized void seek(long avMilliseconds) {
+        avBase = avMilliseconds;
+        startTime = System.currentTimeMillis();
+    }
+
+    public synchronized void pause() {
+        if (!paused) {
+            avBase = getAvMilliseconds();
+            paused = true;
+        }
+    }
+
+    public synchronized void resume() {
+        if (paused) {
+            startTime = System.currentTimeMillis();
+            paused = false;
+        }
+    }
+
+    public synchronized void setRate(double rate) {
+        // re-base so the rate change only applies from now on
+        avBase = getAvMilliseconds();
+        startTime = System.currentTimeMillis();
+        this.rate = rate;
+    }
+
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    public synchronized double getRate() {
+        return rate;
     }
 }
@@ -0,0 +1,348 @@
+package com.company;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A compressed, read only copy of a DisplayStateTable for keeping a whole catalogue in memory (or on disk)
+ * when most titles are cold.
+ *
+ * Transition times are stored as a stream of varints, each one the delta from the previous transition
+ * shifted left one with the silence flag in the low bit. Deltas are zigzag encoded as they can be
+ * negative: when a cue starts on the millisecond the previous one ends, the silence at end + 1 comes
+ * after it. Every BLOCK_SIZE transitions there is a skip entry (absolute time and stream offset) so a
+ * lookup binary searches the skip entries and then only decodes one block. Subtitle text is held per
+ * block as length prefixed UTF-8, optionally deflated, and is only decoded when asked for so that working
+ * out what state we are in never touches it. The last block inflated is kept, as playback asks for the
+ * text of one transition after another from the same block.
+ */
+public class CompactTimeline {
+    public static final int BLOCK_SIZE = 32;
+
+    private static final int MAGIC = 0x53525443; // "SRTC"
+    private static final int VERSION = 2; // 2: zigzag deltas
+
+    private final int numTransitions;
+    private final int firstSeq;        // sequence number of the first transition in the DisplayStateTable
+    private final int[] blockTimes;    // absolute time of the first transition in each block
+    private final int[] blockOffsets;  // where each block starts in the transitions stream
+    private final byte[] transitions;  // varint (zigzag(delta) << 1 | isSilence) per transition
+    private final boolean textCompressed;
+    private final byte[][] textBlocks;
+    private volatile InflatedBlock lastInflated; // replaced whole so other threads never see a torn pair
+
+    // Inflaters hold native buffers, so one per thread reused across every timeline rather than one per
+    // call (or per timeline, with a whole catalogue of them in memory)
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private static class InflatedBlock {
+        final int block;
+        final byte[] raw;
+
+        InflatedBlock(int block, byte[] raw) {
+            this.block = block;
+            this.raw = raw;
+        }
+    }
+
+    private CompactTimeline(int numTransitions, int firstSeq, int[] blockTimes, int[] blockOffsets,
+                            byte[] transitions, boolean textCompressed, byte[][] textBlocks) {
+        this.numTransitions = numTransitions;
+        this.firstSeq = firstSeq;
+        this.blockTimes = blockTimes;
+        this.blockOffsets = blockOffsets;
+        this.transitions = transitions;
+        this.textCompressed = textCompressed;
+        this.textBlocks = textBlocks;
+    }
+
+    public static CompactTimeline from(DisplayStateTable table, boolean compressText) {
+        int lastSeq = table.getLastEvent().seq;
+        int firstSeq = table.getEvent(0) != null ? 0 : 1;
+        int n = lastSeq - firstSeq + 1;
+        int numBlocks = (n + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+        int[] blockTimes = new int[numBlocks];
+        int[] blockOffsets = new int[numBlocks];
+        byte[][] textBlocks = new byte[numBlocks][];
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(n * 2);
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+
+        long previous = 0;
+        for (int i = 0; i < n; i++) {
+            DisplayEvent event = table.getEvent(firstSeq + i);
+            int block = i / BLOCK_SIZE;
+            if (i % BLOCK_SIZE == 0) {
+                blockTimes[block] = toInt(event.msecOffset);
+                blockOffsets[block] = stream.size();
+                previous = event.msecOffset;
+            }
+            long delta = event.msecOffset - previous;
+            long zigzag = (delta << 1) ^ (delta >> 63);
+            writeVarint(stream, (zigzag << 1) | (event.isSilence ? 1 : 0));
+            previous = event.msecOffset;
+
+            byte[] utf8 = event.text.getBytes(StandardCharsets.UTF_8);
+            writeVarint(text, utf8.length);
+            text.write(utf8, 0, utf8.length);
+            if (i % BLOCK_SIZE == BLOCK_SIZE - 1 || i == n - 1) {
+                textBlocks[block] = compressText ? deflate(text.toByteArray()) : text.toByteArray();
+                text.reset();
+            }
+        }
+        return new CompactTimeline(n, firstSeq, blockTimes, blockOffsets, stream.toByteArray(), compressText, textBlocks);
+    }
+
+    public int getNumTransitions() {
+        return numTransitions;
+    }
+
+    // Index of the transition current at msecOffset, the first one if we are before it
+    // Decodes at most one block and doesn't allocate
+    public int indexAt(long msecOffset) {
+        int block = Arrays.binarySearch(blockTimes, toInt(Math.max(0, msecOffset)));
+        if (block < 0) {
+            block = -block - 2; // insertion point - 1 is the block starting before msecOffset
+            if (block < 0)
+                return 0;
+        } else {
+            // several blocks can start at the same time, we want the last
+            while (block + 1 < blockTimes.length && blockTimes[block + 1] == blockTimes[block])
+                block++;
+        }
+
+        int index = block * BLOCK_SIZE;
+        int end = Math.min(index + BLOCK_SIZE, numTransitions);
+        int pos = blockOffsets[block];
+        long time = blockTimes[block];
+        int current = index;
+        while (index < end) {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = transitions[pos++];
+                value |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            time += unzigzag(value >>> 1);
+            if (time > msecOffset)
+                break;
+            current = index++;
+        }
+        return current;
+    }
+
+    // Index of the first transition after msecOffset, -1 if there are no more
+    public int nextIndexAfter(long msecOffset) {
+        int next = indexAt(msecOffset) + 1;
+        if (next == 1 && msecOffset < timeOf(0))
+            return 0;
+        return next < numTransitions ? next : -1;
+    }
+
+    public long timeOf(int index) {
+        return decodeTransition(index) >>> 1;
+    }
+
+    public boolean isSilence(int index) {
+        return (decodeTransition(index) & 1) != 0;
+    }
+
+    // Sequence number of the transition in the DisplayStateTable it was built from
+    public int seqOf(int index) {
+        return firstSeq + index;
+    }
+
+    // Decodes (and inflates if need be) the text block, so this is the slow path
+    public String textOf(int index) {
+        byte[] block = textBlock(index / BLOCK_SIZE);
+        int pos = 0;
+        for (int skip = index % BLOCK_SIZE; ; skip--) {
+            int length = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = block[pos++];
+                length |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            if (skip == 0)
+                return new String(block, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+        }
+    }
+
+    // The state at msecOffset without its text (left empty), as a freshly built event. Use the withText
+    // version when the words are wanted too, decoding them costs far more than finding the state
+    public DisplayEvent getDisplayState(long msecOffset) {
+        return getDisplayState(msecOffset, false);
+    }
+
+    // The state at msecOffset, as a freshly built event. Matches DisplayStateTable.getDisplayState except
+    // when msecOffset is exactly the time of a transition, where the two can settle on different transitions
+    // either side of it. Usually the table returns the one before if both fall in the same second of its
+    // index, and around back to back cues (silence at end + 1 after the next cue starts at end) the table
+    // can land on the silence or the cue before it where we return the cue that has already started
+    public DisplayEvent getDisplayState(long msecOffset, boolean withText) {
+        int index = indexAt(msecOffset);
+        DisplayEvent event = isSilence(index) ? new SilenceEvent() : new SubtitleEvent();
+        event.seq = seqOf(index);
+        event.msecOffset = timeOf(index);
+        if (withText)
+            event.text = textOf(index);
+        return event;
+    }
+
+    // Rough number of bytes kept alive, on the same basis as DisplayStateTable.estimatedBytes
+    public long estimatedBytes() {
+        long bytes = 40 + 3 * 16 + 4L * blockTimes.length * 2 + transitions.length + 16 + 4L * textBlocks.length;
+        for (byte[] block : textBlocks) {
+            bytes += 16 + block.length;
+        }
+        return bytes;
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(numTransitions);
+        out.writeInt(firstSeq);
+        out.writeBoolean(textCompressed);
+        out.writeInt(blockTimes.length);
+        for (int i = 0; i < blockTimes.length; i++) {
+            out.writeInt(blockTimes[i]);
+            out.writeInt(blockOffsets[i]);
+            out.writeInt(textBlocks[i].length);
+            out.write(textBlocks[i]);
+        }
+        out.writeInt(transitions.length);
+        out.write(transitions);
+    }
+
+    public static CompactTimeline readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not a compact timeline");
+        int version = in.readInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported compact timeline version " + version);
+        int numTransitions = in.readInt();
+        int firstSeq = in.readInt();
+        boolean textCompressed = in.readBoolean();
+        int numBlocks = in.readInt();
+        int[] blockTimes = new int[numBlocks];
+        int[] blockOffsets = new int[numBlocks];
+        byte[][] textBlocks = new byte[numBlocks][];
+        for (int i = 0; i < numBlocks; i++) {
+            blockTimes[i] = in.readInt();
+            blockOffsets[i] = in.readInt();
+            textBlocks[i] = new byte[in.readInt()];
+            in.readFully(textBlocks[i]);
+        }
+        byte[] transitions = new byte[in.readInt()];
+        in.readFully(transitions);
+        return new CompactTimeline(numTransitions, firstSeq, blockTimes, blockOffsets, transitions, textCompressed, textBlocks);
+    }
+
+    // Absolute time of the transition at index shifted left one, with its silence flag in the low bit
+    private long decodeTransition(int index) {
+        int block = index / BLOCK_SIZE;
+        int pos = blockOffsets[block];
+        long time = blockTimes[block];
+        long value;
+        int i = block * BLOCK_SIZE;
+        do {
+            value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = transitions[pos++];
+                value |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            time += unzigzag(value >>> 1);
+        } while (i++ < index);
+        return (time << 1) | (value & 1);
+    }
+
+    private static long unzigzag(long zigzag) {
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static int toInt(long msecOffset) {
+        // ints give us 24 days of timeline, enough for any capture
+        return (int) Math.min(msecOffset, Integer.MAX_VALUE);
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 16);
+        writeVarint(out, raw.length);
+        byte[] buffer = new byte[1024];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            out.write(buffer, 0, n);
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    // A block's length prefixed text, inflating it unless it is the one we did last time
+    private byte[] textBlock(int block) {
+        if (!textCompressed)
+            return textBlocks[block];
+        InflatedBlock last = lastInflated;
+        if (last == null || last.block != block) {
+            last = new InflatedBlock(block, inflate(textBlocks[block]));
+            lastInflated = last;
+        }
+        return last.raw;
+    }
+
+    private static byte[] inflate(byte[] compressed) {
+        int pos = 0;
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = compressed[pos++];
+            length |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(compressed, pos, compressed.length - pos);
+        byte[] raw = new byte[length];
+        try {
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                n += inflater.inflate(raw, n, length - n);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt compact timeline text block", e);
+        }
+        return raw;
+    }
+}
@@ -0,0 +1,108 @@
+package com.company;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Check that a CompactTimeline is a faithful copy of the DisplayStateTable it was built from, after a
+ * round trip through writeTo / readFrom, with and without text compression.
+ *
+ * Every transition must come back with the same time, silence flag, sequence number and text, and a
+ * lookup must give the same state as the table at any offset. The one allowed difference is an offset
+ * exactly on a transition time, where the two can settle on different transitions either side of it (see
+ * CompactTimeline.getDisplayState). Titles with back to back cues are included as they give transitions
+ * out of time order. Exits with status 1 on any mismatch.
+ *
+ * Usage: CompactTimelineCheck [lookups per title]
+ */
+public class CompactTimelineCheck {
+    private static int failures = 0;
+
+    public static void main(String[] args) throws IOException, DisplayStateTable.DisplayStateException {
+        int lookups = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+        check("gaps", SyntheticSrt.generate(3000, 1), lookups);
+        check("touching", SyntheticSrt.generate(3000, 2, 0.5), lookups);
+        check("all touching", SyntheticSrt.generate(500, 3, 1.0), lookups);
+        check("two cues", "1\n00:00:01,000 --> 00:00:02,000\nfirst\n\n2\n00:00:02,000 --> 00:00:03,000\nsecond\n", lookups);
+
+        if (failures > 0) {
+            System.out.println("FAIL: " + failures + " mismatches");
+            System.exit(1);
+        }
+        System.out.println("PASS");
+    }
+
+    private static void check(String name, String srt, int lookups) throws IOException, DisplayStateTable.DisplayStateException {
+        DisplayStateTable table = DisplayStateTable.parse(srt);
+        for (boolean compressText : new boolean[] {false, true}) {
+            CompactTimeline compact = roundTrip(CompactTimeline.from(table, compressText));
+            String label = name + (compressText ? " (deflated)" : "");
+
+            for (int i = 0; i < compact.getNumTransitions(); i++) {
+                DisplayEvent event = table.getEvent(compact.seqOf(i));
+                if (event == null || event.msecOffset != compact.timeOf(i) || event.isSilence != compact.isSilence(i)
+                        || !event.text.equals(compact.textOf(i)))
+                    fail(label, "transition " + i + " doesn't match the table");
+            }
+            if (table.getLastEvent().seq != compact.seqOf(compact.getNumTransitions() - 1))
+                fail(label, "transition count doesn't match the table");
+
+            Random random = new Random(name.hashCode());
+            long end = table.getLastEvent().msecOffset + 2000;
+            long exactHits = 0;
+            for (int i = 0; i < lookups; i++) {
+                // half random offsets, half right on or next to a transition where the edge cases are
+                long offset;
+                if ((i & 1) == 0) {
+                    offset = (long) (random.nextDouble() * end);
+                } else {
+                    offset = compact.timeOf(random.nextInt(compact.getNumTransitions())) + random.nextInt(3) - 1;
+                }
+                if (offset < 0)
+                    continue;
+                DisplayEvent expected = table.getDisplayState(offset);
+                if (expected == null)
+                    continue; // before the first cue of a table with no initial silence
+                int index = compact.indexAt(offset);
+                if (expected.seq != compact.seqOf(index)) {
+                    if (onTransitionBetween(compact, expected.seq - compact.seqOf(0), index, offset))
+                        exactHits++;
+                    else
+                        fail(label, "state at " + offset + " is " + compact.seqOf(index) + ", table says " + expected.seq);
+                } else if ((i & 15) == 1) {
+                    // now and again the whole event, text included, through the reused inflated block
+                    DisplayEvent state = compact.getDisplayState(offset, true);
+                    if (state.seq != expected.seq || state.isSilence != expected.isSilence || !state.text.equals(expected.text))
+                        fail(label, "event at " + offset + " doesn't match the table");
+                }
+            }
+            System.out.printf("%-22s %6d transitions, %8d bytes (table %8d), %d exact hit differences%n",
+                    label, compact.getNumTransitions(), compact.estimatedBytes(), table.estimatedBytes(), exactHits);
+        }
+    }
+
+    // Is offset the exact time of any transition from index a to index b (either way round)
+    private static boolean onTransitionBetween(CompactTimeline compact, int a, int b, long offset) {
+        for (int i = Math.max(0, Math.min(a, b)); i <= Math.max(a, b) && i < compact.getNumTransitions(); i++) {
+            if (compact.timeOf(i) == offset)
+                return true;
+        }
+        return false;
+    }
+
+    private static CompactTimeline roundTrip(CompactTimeline timeline) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        timeline.writeTo(new DataOutputStream(bytes));
+        return CompactTimeline.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    private static void fail(String label, String message) {
+        if (failures++ < 20)
+            System.out.println(label + ": " + message);
+    }
+}
@@ -2,6 +2,10 @@ package com.company;
 
 /**
  * Created by adam on 20/01/17.
+ *
+ * Events are filled in while a DisplayStateTable is being built and are read only after that: a built
+ * table can be shared between sessions (see DisplayStateTableCache), so changing an event it hands out
+ * changes it for every viewer. Copy it with the copy constructor if you need your own.
  */
 public class DisplayEvent {
     int seq = -1;     // sequence number for events, easy checking to see if we are at the same one
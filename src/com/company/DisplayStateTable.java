@@ -3,9 +3,11 @@ package com.company;
 import jdk.nashorn.internal.runtime.ParserException;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.TimeZone;
 
 /**
@@ -22,9 +24,15 @@ public class DisplayStateTable {
 
     //long[] divisors = {100000000, 10000000, 1000000, 100000, 10000, 1000, 100, 10, 1};
     long[] divisors = {100000000, 10000000, 1000000, 100000, 10000, 1000};
+    // Largest offset the index has digits for (a bit over 11.5 days), anything bigger runs off the top node
+    public static final long MAX_OFFSET = 999999999L;
     private DecimalNode index = new DecimalNode(-1);
     private int numEvents = 0;
+    private int numNodes = 1;
     private DisplayEvent[] events;
+    // Once built the table is read only and safe to share between sessions. That only holds if nobody
+    // changes the DisplayEvents it hands out either, every viewer of a cached film sees the same objects
+    private boolean sealed = false;
 
 
     public class DisplayStateException extends Exception {
@@ -57,7 +65,7 @@ public class DisplayStateTable {
         }
     }
 
-    public long timestampToMilliseonds(String ts) {
+    public static long timestampToMilliseonds(String ts) {
         // Format is HH:mm:ss,SSS
         try {
             SimpleDateFormat dateFormat = new SimpleDateFormat("HH:mm:ss,SSS");
@@ -71,8 +79,29 @@ public class DisplayStateTable {
         }
     }
 
+    // Tokenise and index a whole SRT document in one go
+    public static DisplayStateTable parse(String content) {
+        Tokeniser tokeniser = Tokeniser.srtTokeniser();
+        tokeniser.tokenise(content);
+        return new DisplayStateTable(tokeniser.getTokens(), tokeniser.getTokens().size()/5);
+    }
+
     public DisplayStateTable(LinkedList<Tokeniser.Token> tokens, int numSubtitles) {
-        this.events = new DisplayEvent[2*numSubtitles+1];
+        this(eventsFromTokens(tokens), 2*numSubtitles+1);
+    }
+
+    // Index events that are already in order and numbered from 0 (or 1 if there is no initial silence)
+    DisplayStateTable(List<DisplayEvent> orderedEvents, int capacity) {
+        this.events = new DisplayEvent[Math.max(capacity, orderedEvents.size() + 1)];
+        for (DisplayEvent event : orderedEvents) {
+            addDisplayEvent(event);
+        }
+        sealed = true;
+    }
+
+    // Translate SRT tokens into display events without indexing them
+    static ArrayList<DisplayEvent> eventsFromTokens(LinkedList<Tokeniser.Token> tokens) {
+        ArrayList<DisplayEvent> events = new ArrayList<DisplayEvent>(tokens.size()/2 + 1);
         Iterator<Tokeniser.Token> x = tokens.listIterator();
         int sequence = 1;
         // Iterate through tokens creating new display states as needed and adding them to the state table
@@ -97,11 +126,11 @@ public class DisplayStateTable {
                             SilenceEvent initialSilence = new SilenceEvent();
                             initialSilence.seq = 0;
                             initialSilence.msecOffset = 0; // starts at the, well, start really
-                            addDisplayEvent(initialSilence);
+                            events.add(initialSilence);
                         }
                         // Add in the subtitle and following silence
-                        addDisplayEvent(subtitle);
-                        addDisplayEvent(silence);
+                        events.add(subtitle);
+                        events.add(silence);
                         // create some new objects to play with and let the others go, just let them go. It's going to be allright
                         subtitle = new SubtitleEvent();
                         silence = new SilenceEvent();
@@ -145,8 +174,38 @@ public class DisplayStateTable {
 
         }
         // Add in the final subtitle and following silence
-        addDisplayEvent(subtitle);
-        addDisplayEvent(silence);
+        events.add(subtitle);
+        events.add(silence);
+        return events;
+    }
+
+    // Rough number of bytes kept alive by this table, used to weigh it against others in a cache.
+    // Assumes 64 bit compressed oops: 12 byte headers, 4 byte references, everything padded to 8
+    public long estimatedBytes() {
+        long bytes = 48 + 16 + 4L * events.length; // this object and the events array
+        bytes += numNodes * 80L; // DecimalNode plus its next[] array, TerminalNodes are smaller so this is generous
+        for (DisplayEvent e : events) {
+            if (e != null) {
+                bytes += 40 + 24 + 16 + 2L * e.text.length(); // event, String and its char[]
+            }
+        }
+        return bytes;
+    }
+
+    // The event with the given sequence number, null if there isn't one. Shared, don't modify it
+    public DisplayEvent getEvent(int seq) {
+        if (seq < 0 || seq >= events.length)
+            return null;
+        return events[seq];
+    }
+
+    // The silence after the final subtitle (shared, read only)
+    public DisplayEvent getLastEvent() {
+        for (int i = events.length - 1; i >= 0; i--) {
+            if (events[i] != null)
+                return events[i];
+        }
+        return null;
     }
 
     // add event with number of milliseconds as timing
@@ -155,6 +214,10 @@ public class DisplayStateTable {
         int thisDigit;
         TreeNode node = this.index;
 
+        if (sealed) {
+            throw new IllegalStateException("DisplayStateTable is read only once built");
+        }
+
         // First add the event to the event array for storage
         events[event.seq] = event;
         numEvents++;
@@ -172,6 +235,7 @@ public class DisplayStateTable {
                 else {
                     decNode.next[thisDigit] = new DecimalNode(thisDigit);
                 }
+                numNodes++;
             }
 
             node = decNode.next[thisDigit];
@@ -199,20 +263,23 @@ public class DisplayStateTable {
 
     }
 
+    // Order to scan the digits of a node in, nearest to the digit we wanted first
+    // Built once rather than per lookup so the playback loop doesn't allocate
+    private static final int[][] searchPatterns = {
+            {0, 1, 2, 3, 4, 5, 6, 7, 8, 9}, // 0
+            {1, 0, 2, 3, 4, 5, 6, 7, 8, 9}, // 1
+            {2, 1, 3, 0, 4, 5, 6, 7, 8, 9}, // 2
+            {3, 2, 4, 1, 5, 0, 6, 7, 8, 9}, // 3
+            {4, 3, 5, 2, 6, 1, 7, 0, 8, 9}, // 4
+            {5, 4, 6, 3, 7, 2, 8, 1, 9, 0}, // 5
+            {6, 5, 7, 4, 8, 3, 9, 2, 1, 0}, // 6
+            {7, 6, 8, 5, 9, 4, 3, 2, 1, 0}, // 7
+            {8, 7, 9, 6, 5, 4, 3, 2, 1, 0}, // 8
+            {9, 8, 7, 6, 5, 4, 3, 2, 1, 0}  // 9
+    };
+
     private DisplayEvent findNearestIndex(TreeNode node, int thisDigit, long msecOffset, boolean firstScan) throws DisplayStateException
     {
-        int[][] searchPatterns = {
-                {0, 1, 2, 3, 4, 5, 6, 7, 8, 9}, // 0
-                {1, 0, 2, 3, 4, 5, 6, 7, 8, 9}, // 1
-                {2, 1, 3, 0, 4, 5, 6, 7, 8, 9}, // 2
-                {3, 2, 4, 1, 5, 0, 6, 7, 8, 9}, // 3
-                {4, 3, 5, 2, 6, 1, 7, 0, 8, 9}, // 4
-                {5, 4, 6, 3, 7, 2, 8, 1, 9, 0}, // 5
-                {6, 5, 7, 4, 8, 3, 9, 2, 1, 0}, // 6
-                {7, 6, 8, 5, 9, 4, 3, 2, 1, 0}, // 7
-                {8, 7, 9, 6, 5, 4, 3, 2, 1, 0}, // 8
-                {9, 8, 7, 6, 5, 4, 3, 2, 1, 0}  // 9
-        };
         // The data structure mandates that there must be a digit in this index node so we scan for one
         // no more matching digits in the index, scan this nodes index to find the nearest and scan the event array
         if (node.isTerminal) {
@@ -255,6 +322,7 @@ public class DisplayStateTable {
     // Then we have a pointer to the Event Storage, the event we require will be close by
     // So scan up or down depending on where we are in relation to the surrounding events.
     // We always want the event just prior to the current timestamp as that is the one that is current
+    // The event returned belongs to the table and may be shared with other sessions, treat it as read only
     public DisplayEvent getDisplayState(long msecOffset) throws DisplayStateException
     {
         TreeNode node = this.index;
@@ -278,6 +346,29 @@ public class DisplayStateTable {
         throw new DisplayStateException("Corrupt DisplayStateTable - No terminal node found at end of index: " + msecOffset);
     }
 
+    // The earliest event to take effect after msecOffset, null if there are no more changes to come
+    // Events are only nearly in time order: with back to back cues the silence ending one cue comes 1ms
+    // after the next cue starts, so rather than taking the event after the current one we scan forward
+    // from it for the earliest later time. Read only, as with getDisplayState
+    public DisplayEvent getNextEvent(long msecOffset) throws DisplayStateException
+    {
+        DisplayEvent current = getDisplayState(msecOffset);
+        // No current event before the first cue of a table without an initial silence, start at the top.
+        // Otherwise start one back as the lookup can settle on either event of an out of order pair
+        int from = current == null ? 0 : Math.max(0, current.seq - 1);
+        DisplayEvent next = null;
+        for (int i = from; i < events.length; i++) {
+            DisplayEvent event = events[i];
+            if (event == null)
+                continue;
+            if (next != null && event.msecOffset > next.msecOffset)
+                break; // back in order, nothing further on can be earlier
+            if (event.msecOffset > msecOffset && (next == null || event.msecOffset < next.msecOffset))
+                next = event;
+        }
+        return next;
+    }
+
     /*
     private DisplayEvent findEarlierEvent(TreeNode node, long keyElement, int keyDivIndex) throws DisplayStateException {
         if (node.isTerminal) {
@@ -0,0 +1,266 @@
+package com.company;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide cache of built DisplayStateTables so that sessions playing the same film share one table
+ * rather than each re-running the Tokeniser and index build.
+ *
+ * Entries are keyed by file path plus a hash of the content so an edited file is never served stale.
+ * Concurrent requests for a film that is not yet cached share a single build: the first caller does the
+ * work and everyone else waits on the same FutureTask. Those waiters are counted as coalesced loads, not
+ * hits, so a premiere where thousands of sessions stall on one parse shows up in the stats.
+ * Eviction is least recently used, bounded by the estimated bytes each table keeps alive rather than
+ * by the number of entries, as a feature film and a 24 hour capture are very different sizes.
+ */
+public class DisplayStateTableCache {
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    private static final DisplayStateTableCache shared = new DisplayStateTableCache(DEFAULT_MAX_BYTES);
+
+    private final long maxBytes;
+    private long currentBytes = 0; // guarded by entries
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true); // access order for LRU
+    private final ConcurrentHashMap<Key, FutureTask<DisplayStateTable>> loading = new ConcurrentHashMap<Key, FutureTask<DisplayStateTable>>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalescedLoads = new AtomicLong();
+    private final AtomicLong coalescedWaitNanos = new AtomicLong();
+    private final AtomicLong loadFailures = new AtomicLong();
+    private final AtomicLong totalLoadNanos = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static class Key {
+        final String path;
+        final String contentHash;
+
+        Key(String path, String contentHash) {
+            this.path = path;
+            this.contentHash = contentHash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return path.equals(k.path) && contentHash.equals(k.contentHash);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * path.hashCode() + contentHash.hashCode();
+        }
+    }
+
+    private static class Entry {
+        final DisplayStateTable table;
+        final long bytes;
+
+        Entry(DisplayStateTable table, long bytes) {
+            this.table = table;
+            this.bytes = bytes;
+        }
+    }
+
+    public static class Stats {
+        public final long hits;
+        public final long misses;
+        public final long coalescedLoads;      // callers that waited on a build someone else started
+        public final long coalescedWaitNanos;
+        public final long loadFailures;
+        public final long totalLoadNanos;
+        public final long evictions;
+        public final int entries;
+        public final long bytes;
+
+        Stats(long hits, long misses, long coalescedLoads, long coalescedWaitNanos, long loadFailures,
+              long totalLoadNanos, long evictions, int entries, long bytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.coalescedLoads = coalescedLoads;
+            this.coalescedWaitNanos = coalescedWaitNanos;
+            this.loadFailures = loadFailures;
+            this.totalLoadNanos = totalLoadNanos;
+            this.evictions = evictions;
+            this.entries = entries;
+            this.bytes = bytes;
+        }
+
+        // Only requests answered from an already published table count as hits
+        public double hitRate() {
+            long requests = hits + misses + coalescedLoads;
+            return requests == 0 ? 1.0 : (double) hits / requests;
+        }
+
+        public double averageLoadMillis() {
+            return misses == 0 ? 0.0 : totalLoadNanos / 1e6 / misses;
+        }
+
+        public double averageCoalescedWaitMillis() {
+            return coalescedLoads == 0 ? 0.0 : coalescedWaitNanos / 1e6 / coalescedLoads;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits=%d misses=%d coalesced=%d hitRate=%.3f loadFailures=%d avgLoad=%.2fms avgCoalescedWait=%.2fms evictions=%d entries=%d bytes=%d",
+                    hits, misses, coalescedLoads, hitRate(), loadFailures, averageLoadMillis(),
+                    averageCoalescedWaitMillis(), evictions, entries, bytes);
+        }
+    }
+
+    public DisplayStateTableCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static DisplayStateTableCache getShared() {
+        return shared;
+    }
+
+    // Get the table for the SRT content at path, building it (once) if we don't have it already.
+    // The table returned is shared so must not be modified, it is sealed when built so this is enforced.
+    // Parse failures are thrown to every caller waiting on the build and nothing is cached for them.
+    public DisplayStateTable get(String path, final String content) {
+        final Key key = new Key(path, hash(content));
+
+        DisplayStateTable table = lookup(key);
+        if (table != null) {
+            hits.incrementAndGet();
+            return table;
+        }
+
+        FutureTask<DisplayStateTable> task = new FutureTask<DisplayStateTable>(new Callable<DisplayStateTable>() {
+            public DisplayStateTable call() {
+                return load(key, content);
+            }
+        });
+        FutureTask<DisplayStateTable> inFlight = loading.putIfAbsent(key, task);
+        if (inFlight != null) {
+            // Someone else is already building this one, piggyback on their work. Not a hit, we still
+            // wait for the parse (and get its failure if it fails)
+            coalescedLoads.incrementAndGet();
+            long start = System.nanoTime();
+            try {
+                return await(inFlight);
+            } finally {
+                coalescedWaitNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+
+        try {
+            task.run();
+            return await(task);
+        } finally {
+            loading.remove(key, task);
+        }
+    }
+
+    public Stats getStats() {
+        synchronized (entries) {
+            return new Stats(hits.get(), misses.get(), coalescedLoads.get(), coalescedWaitNanos.get(),
+                    loadFailures.get(), totalLoadNanos.get(), evictions.get(), entries.size(), currentBytes);
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+            currentBytes = 0;
+        }
+    }
+
+    private DisplayStateTable lookup(Key key) {
+        synchronized (entries) {
+            Entry e = entries.get(key);
+            return e == null ? null : e.table;
+        }
+    }
+
+    private DisplayStateTable load(Key key, String content) {
+        // The previous owner may have published between our lookup and taking over the build
+        DisplayStateTable table = lookup(key);
+        if (table != null) {
+            hits.incrementAndGet();
+            return table;
+        }
+
+        misses.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            table = DisplayStateTable.parse(content);
+        } catch (RuntimeException e) {
+            loadFailures.incrementAndGet();
+            throw e;
+        } finally {
+            totalLoadNanos.addAndGet(System.nanoTime() - start);
+        }
+        publish(key, table);
+        return table;
+    }
+
+    private void publish(Key key, DisplayStateTable table) {
+        Entry entry = new Entry(table, table.estimatedBytes());
+        synchronized (entries) {
+            Entry old = entries.put(key, entry);
+            if (old != null) {
+                currentBytes -= old.bytes;
+            }
+            currentBytes += entry.bytes;
+
+            // Evict from the least recently used end until we fit. A table bigger than the whole cache
+            // is still handed back to the caller, it just doesn't stay
+            Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+            while (currentBytes > maxBytes && it.hasNext()) {
+                currentBytes -= it.next().getValue().bytes;
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private static DisplayStateTable await(FutureTask<DisplayStateTable> task) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException ie) {
+                    interrupted = true; // keep waiting, other sessions are depending on this build
+                } catch (ExecutionException ee) {
+                    Throwable cause = ee.getCause();
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    if (cause instanceof Error) throw (Error) cause;
+                    throw new IllegalStateException("DisplayStateTable build failed", cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static String hash(String content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] sum = digest.digest(content.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(sum.length * 2);
+            for (byte b : sum) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
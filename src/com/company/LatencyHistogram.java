@@ -0,0 +1,82 @@
+package com.company;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of non negative long values (nanoseconds, milliseconds, whatever) for percentiles.
+ *
+ * Values are bucketed by power of two with 16 linear sub buckets in each, so any reported percentile
+ * is within ~6% of the real value. Recording is a single atomic increment and never allocates so it is
+ * safe to call from lots of threads in a hot loop.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS + 1) * SUB_BUCKETS);
+
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts.incrementAndGet(bucketOf(value));
+    }
+
+    public long getCount() {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    // The value at or under which the given fraction (0.0 - 1.0) of recorded values fall
+    public long percentile(double fraction) {
+        long total = getCount();
+        if (total == 0)
+            return 0;
+        long wanted = Math.max(1, (long) Math.ceil(total * fraction));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= wanted)
+                return highestValueIn(i);
+        }
+        return highestValueIn(counts.length() - 1);
+    }
+
+    public long max() {
+        for (int i = counts.length() - 1; i >= 0; i--) {
+            if (counts.get(i) > 0)
+                return highestValueIn(i);
+        }
+        return 0;
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.addAndGet(i, other.counts.get(i));
+        }
+    }
+
+    public String summary(String unit) {
+        return String.format("n=%d p50=%d%s p90=%d%s p99=%d%s p99.9=%d%s max=%d%s", getCount(),
+                percentile(0.5), unit, percentile(0.9), unit, percentile(0.99), unit,
+                percentile(0.999), unit, max(), unit);
+    }
+
+    // Values below SUB_BUCKETS get a bucket each, above that the top SUB_BITS+1 bits pick the bucket
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS - 1;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    private static long highestValueIn(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,435 @@
+package com.company;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Soak / load test that runs lots of simulated viewers through the SubtitleSequencer, AvTracker and
+ * DisplayStateTable loop at once, each one playing, seeking, pausing, scrubbing and changing rate.
+ *
+ * Records how late each display change is emitted, how long each tick's lookup takes, how late the
+ * ticks themselves fire, plus thread counts, GC pauses and allocation rate, then prints a report.
+ * The run fails (exit status 1) if p99 emit lateness goes over --max-p99-lateness or any lookup errors.
+ *
+ * Usage: LoadHarness [--sessions N] [--duration secs] [--warmup secs] [--tick ms] [--threads N]
+ *                    [--seed N] [--action-chance 0.0-1.0] [--script play,seek,pause,rate,scrub]
+ *                    [--titles N] [--cues N] [--max-p99-lateness ms] [--report file] [file.srt ...]
+ * With no SRT files given, --titles synthetic titles of --cues subtitles each are generated.
+ */
+public class LoadHarness {
+
+    enum Action { PLAY, SEEK, PAUSE, RATE, SCRUB }
+
+    private static final Action[] allActions = Action.values(); // values() hands back a new copy each call
+    private static final double[] rates = {0.5, 0.75, 1.25, 1.5, 2.0};
+    private static final int SCRUB_TICKS = 5;
+
+    int numSessions = 1000;
+    long durationMs = 60000;
+    long warmupMs = 5000;
+    long tickMs = 100;
+    int numThreads = Runtime.getRuntime().availableProcessors();
+    long seed = 42;
+    double actionChance = 0.01; // chance per tick of a session doing something other than just playing
+    Action[] script = null;     // if set, sessions cycle through these actions rather than picking at random
+    int syntheticTitles = 8;
+    int cuesPerTitle = 1500;
+    long maxP99LatenessMs = -1;
+    String reportFile = null;
+    List<String> srtFiles = new ArrayList<String>();
+
+    // Everything the sessions record, only while recording is on so that warmup is left out
+    volatile boolean recording = false;
+    final LatencyHistogram gcPauseMs = new LatencyHistogram();
+    private final List<Recorder> recorders = new ArrayList<Recorder>(); // one per scheduler thread, guarded by itself
+    private final ThreadLocal<Recorder> recorder = new ThreadLocal<Recorder>() {
+        protected Recorder initialValue() {
+            Recorder r = new Recorder();
+            synchronized (recorders) {
+                recorders.add(r);
+            }
+            return r;
+        }
+    };
+
+    private final List<Thread> workers = new ArrayList<Thread>();
+
+    // What the sessions on one scheduler thread have recorded. With thousands of sessions all bumping the
+    // same counters from every core, the cache line traffic would show up in the tick lateness we report,
+    // so each thread keeps its own and they are only added together for the report
+    static class Recorder {
+        final LatencyHistogram emitLatenessMs = new LatencyHistogram();
+        final LatencyHistogram lookupNanos = new LatencyHistogram();
+        final LatencyHistogram tickLatenessMicros = new LatencyHistogram();
+        long ticks = 0;
+        long emits = 0;
+        long actions = 0;
+        long errors = 0;
+
+        void add(Recorder other) {
+            emitLatenessMs.add(other.emitLatenessMs);
+            lookupNanos.add(other.lookupNanos);
+            tickLatenessMicros.add(other.tickLatenessMicros);
+            ticks += other.ticks;
+            emits += other.emits;
+            actions += other.actions;
+            errors += other.errors;
+        }
+    }
+
+    // A title in the corpus
+    static class Title {
+        final String name;
+        final DisplayStateTable table;
+        final long durationMs;
+
+        Title(String name, DisplayStateTable table, long durationMs) {
+            this.name = name;
+            this.table = table;
+            this.durationMs = durationMs;
+        }
+    }
+
+    // Output that drops everything, we care about the timing loop not the console
+    private static class DiscardingOutput implements SubtitleSequencer.Output {
+        public void show(DisplayEvent event) {
+        }
+    }
+
+    // One simulated viewer, run by the scheduler once every tick
+    class Session implements Runnable {
+        final Title title;
+        final Random random;
+        final AvTracker tracker = new AvTracker();
+        final SubtitleSequencer sequencer;
+        long expectedTickNanos;
+        long discontinuityAv;   // AV time of the last seek/pause/rate change, emits before it aren't "late"
+        int scriptPos = 0;
+        int scrubTicksLeft = 0;
+
+        Session(Title title, long seed, long firstTickNanos) {
+            this.title = title;
+            this.random = new Random(seed);
+            this.sequencer = new SubtitleSequencer(tracker, title.table, new DiscardingOutput());
+            this.expectedTickNanos = firstTickNanos;
+            tracker.seek(randomPosition());
+            discontinuityAv = tracker.getAvMilliseconds();
+        }
+
+        public void run() {
+            long now = System.nanoTime();
+            boolean record = recording;
+            Recorder stats = recorder.get();
+            if (record) {
+                stats.tickLatenessMicros.record((now - expectedTickNanos) / 1000);
+                stats.ticks++;
+            }
+            expectedTickNanos += TimeUnit.MILLISECONDS.toNanos(tickMs);
+
+            if (scrubTicksLeft > 0) {
+                scrubTicksLeft--;
+                discontinuity(clamp(tracker.getAvMilliseconds() + random.nextInt(60000) - 30000));
+            } else if (random.nextDouble() < actionChance) {
+                act(nextAction());
+                if (record)
+                    stats.actions++;
+            }
+            if (tracker.getAvMilliseconds() >= title.durationMs) {
+                // Credits have rolled, start again from the top
+                discontinuity(0);
+            }
+
+            try {
+                long start = System.nanoTime();
+                DisplayEvent event = sequencer.tick();
+                long lookup = System.nanoTime() - start;
+                if (record) {
+                    stats.lookupNanos.record(lookup);
+                    if (event != null) {
+                        stats.emits++;
+                        if (!tracker.isPaused() && event.msecOffset >= discontinuityAv) {
+                            // how long ago, in wall clock time, this event should have appeared
+                            stats.emitLatenessMs.record((long) ((tracker.getAvMilliseconds() - event.msecOffset) / tracker.getRate()));
+                        }
+                    }
+                }
+            } catch (DisplayStateTable.DisplayStateException e) {
+                stats.errors++;
+            } catch (RuntimeException e) {
+                // letting this escape would quietly cancel the session's schedule and the run would still pass
+                stats.errors++;
+            }
+        }
+
+        Action nextAction() {
+            if (script != null) {
+                Action action = script[scriptPos];
+                scriptPos = (scriptPos + 1) % script.length;
+                return action;
+            }
+            return allActions[random.nextInt(allActions.length)];
+        }
+
+        void act(Action action) {
+            switch (action) {
+                case PLAY:
+                    tracker.resume();
+                    tracker.setRate(1.0);
+                    discontinuityAv = tracker.getAvMilliseconds();
+                    break;
+                case SEEK:
+                    discontinuity(randomPosition());
+                    break;
+                case PAUSE:
+                    tracker.pause();
+                    break;
+                case RATE:
+                    tracker.setRate(rates[random.nextInt(rates.length)]);
+                    discontinuityAv = tracker.getAvMilliseconds();
+                    break;
+                case SCRUB:
+                    scrubTicksLeft = SCRUB_TICKS;
+                    break;
+            }
+        }
+
+        void discontinuity(long av) {
+            tracker.seek(av);
+            discontinuityAv = av;
+        }
+
+        long randomPosition() {
+            return (long) (random.nextDouble() * title.durationMs);
+        }
+
+        long clamp(long av) {
+            return Math.max(0, Math.min(av, title.durationMs - 1));
+        }
+    }
+
+    List<Title> loadCorpus() throws IOException {
+        DisplayStateTableCache cache = DisplayStateTableCache.getShared();
+        List<Title> titles = new ArrayList<Title>();
+        if (srtFiles.isEmpty()) {
+            for (int i = 0; i < syntheticTitles; i++) {
+                String content = SyntheticSrt.generate(cuesPerTitle, seed + i);
+                titles.add(title("synthetic-" + i, cache.get("synthetic-" + i, content)));
+            }
+        } else {
+            for (String file : srtFiles) {
+                String content = new String(Files.readAllBytes(Paths.get(file)));
+                titles.add(title(file, cache.get(file, content)));
+            }
+        }
+        return titles;
+    }
+
+    private static Title title(String name, DisplayStateTable table) {
+        // the last event is the silence after the final subtitle, give it a few seconds before looping
+        return new Title(name, table, table.getLastEvent().msecOffset + 5000);
+    }
+
+    private void listenForGcPauses() {
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (!(gc instanceof NotificationEmitter))
+                continue;
+            ((NotificationEmitter) gc).addNotificationListener(new NotificationListener() {
+                public void handleNotification(Notification notification, Object handback) {
+                    if (recording && GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                        GarbageCollectionNotificationInfo info =
+                                GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                        gcPauseMs.record(info.getGcInfo().getDuration());
+                    }
+                }
+            }, null, null);
+        }
+    }
+
+    private long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    // Bytes allocated so far by the scheduler threads running the sessions, -1 if the JVM can't tell us
+    private long workerAllocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+        if (!sunThreads.isThreadAllocatedMemorySupported() || !sunThreads.isThreadAllocatedMemoryEnabled())
+            return -1;
+        long total = 0;
+        synchronized (workers) {
+            for (Thread t : workers) {
+                total += Math.max(0, sunThreads.getThreadAllocatedBytes(t.getId()));
+            }
+        }
+        return total;
+    }
+
+    // Returns true if the run passed
+    public boolean run(PrintStream out) throws IOException, InterruptedException {
+        out.println("Loading corpus...");
+        long loadStart = System.nanoTime();
+        List<Title> titles = loadCorpus();
+        out.printf("Loaded %d titles in %dms%n", titles.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - loadStart));
+
+        listenForGcPauses();
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(numThreads, new ThreadFactory() {
+            int n = 0;
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "session-" + n++);
+                t.setDaemon(true);
+                synchronized (workers) {
+                    workers.add(t);
+                }
+                return t;
+            }
+        });
+        scheduler.prestartAllCoreThreads();
+
+        // Spread the sessions over a tick so they don't all wake at once
+        Random random = new Random(seed);
+        long base = System.nanoTime();
+        for (int i = 0; i < numSessions; i++) {
+            long delayNanos = (long) (random.nextDouble() * TimeUnit.MILLISECONDS.toNanos(tickMs));
+            Session session = new Session(titles.get(random.nextInt(titles.size())), random.nextLong(), base + delayNanos);
+            scheduler.scheduleAtFixedRate(session, delayNanos - (System.nanoTime() - base),
+                    TimeUnit.MILLISECONDS.toNanos(tickMs), TimeUnit.NANOSECONDS);
+        }
+        out.printf("Started %d sessions on %d threads, warming up for %ds%n", numSessions, numThreads, warmupMs / 1000);
+
+        Thread.sleep(warmupMs);
+        long gcBefore = gcCount();
+        long allocBefore = workerAllocatedBytes();
+        long start = System.nanoTime();
+        recording = true;
+
+        Thread.sleep(durationMs);
+
+        recording = false;
+        long elapsedNanos = System.nanoTime() - start;
+        long allocAfter = workerAllocatedBytes();
+        long gcAfter = gcCount();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        int threadCount = threads.getThreadCount();
+        int peakThreads = threads.getPeakThreadCount();
+        scheduler.shutdownNow();
+        scheduler.awaitTermination(10, TimeUnit.SECONDS);
+
+        // The scheduler has stopped so everything the threads recorded is visible to us now
+        Recorder total = new Recorder();
+        synchronized (recorders) {
+            for (Recorder r : recorders) {
+                total.add(r);
+            }
+        }
+
+        double seconds = elapsedNanos / 1e9;
+        long p99Lateness = total.emitLatenessMs.percentile(0.99);
+        out.println("-------------- Load test report --------------");
+        out.printf("sessions=%d threads=%d tick=%dms duration=%.1fs%n", numSessions, numThreads, tickMs, seconds);
+        out.printf("ticks=%d (%.0f/s) emits=%d actions=%d errors=%d%n", total.ticks, total.ticks / seconds, total.emits, total.actions, total.errors);
+        out.println("emit lateness   " + total.emitLatenessMs.summary("ms"));
+        out.println("lookup latency  " + total.lookupNanos.summary("ns"));
+        out.println("tick lateness   " + total.tickLatenessMicros.summary("us"));
+        out.printf("threads         live=%d peak=%d%n", threadCount, peakThreads);
+        out.println("gc pauses       count=" + (gcAfter - gcBefore) + " " + gcPauseMs.summary("ms"));
+        if (allocBefore >= 0 && allocAfter >= 0) {
+            long allocated = allocAfter - allocBefore;
+            out.printf("allocation      %.1f MB/s, %.1f bytes/tick%n", allocated / seconds / (1024 * 1024),
+                    total.ticks == 0 ? 0.0 : (double) allocated / total.ticks);
+        } else {
+            out.println("allocation      not available on this JVM");
+        }
+        out.println("cache           " + DisplayStateTableCache.getShared().getStats());
+
+        boolean passed = total.errors == 0;
+        if (maxP99LatenessMs >= 0 && p99Lateness > maxP99LatenessMs) {
+            out.printf("FAIL: p99 emit lateness %dms is over the %dms limit%n", p99Lateness, maxP99LatenessMs);
+            passed = false;
+        }
+        if (total.errors > 0) {
+            out.printf("FAIL: %d lookups threw%n", total.errors);
+        }
+        if (passed) {
+            out.println("PASS");
+        }
+        return passed;
+    }
+
+    static LoadHarness fromArgs(String[] args) {
+        LoadHarness harness = new LoadHarness();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                harness.srtFiles.add(arg);
+                continue;
+            }
+            if (i + 1 >= args.length)
+                throw new IllegalArgumentException("Missing value for " + arg);
+            String value = args[++i];
+            switch (arg) {
+                case "--sessions": harness.numSessions = Integer.parseInt(value); break;
+                case "--duration": harness.durationMs = Long.parseLong(value) * 1000; break;
+                case "--warmup": harness.warmupMs = Long.parseLong(value) * 1000; break;
+                case "--tick": harness.tickMs = Long.parseLong(value); break;
+                case "--threads": harness.numThreads = Integer.parseInt(value); break;
+                case "--seed": harness.seed = Long.parseLong(value); break;
+                case "--action-chance": harness.actionChance = Double.parseDouble(value); break;
+                case "--titles": harness.syntheticTitles = Integer.parseInt(value); break;
+                case "--cues": harness.cuesPerTitle = Integer.parseInt(value); break;
+                case "--max-p99-lateness": harness.maxP99LatenessMs = Long.parseLong(value); break;
+                case "--report": harness.reportFile = value; break;
+                case "--script":
+                    String[] names = value.split(",");
+                    harness.script = new Action[names.length];
+                    for (int a = 0; a < names.length; a++) {
+                        harness.script[a] = Action.valueOf(names[a].trim().toUpperCase());
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        return harness;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        LoadHarness harness = fromArgs(args);
+        boolean passed;
+        if (harness.reportFile != null) {
+            PrintStream report = new PrintStream(harness.reportFile);
+            try {
+                passed = harness.run(report);
+            } finally {
+                report.close();
+            }
+            System.out.println(new String(Files.readAllBytes(Paths.get(harness.reportFile))));
+        } else {
+            passed = harness.run(System.out);
+        }
+        System.exit(passed ? 0 : 1);
+    }
+}
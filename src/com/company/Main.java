@@ -22,30 +22,44 @@ public class Main {
     public static void main(String[] args) throws IOException {
         // write your code here
         System.out.println("G'day World!");
-        Tokeniser tokeniser = new Tokeniser();
-        tokeniser.add("[1-9][0-9]*[\\r\\n]", 1); // index
-        tokeniser.add("[0-9][0-9]:[0-9][0-9]:[0-9][0-9],[0-9][0-9][0-9]", 2); // timestamp
-        tokeniser.add("-->", 3); // span
-        tokeniser.add("[\\S ]+", 4); // text
 
         String srtFileName = "/home/adam/dev/SRT_Master_Blaster/Pulp.Fiction.1994.720p.BluRay.x264-SiNNERS.English.srt";
         if (args.length > 0)
             srtFileName = args[0];
+        boolean parallel = args.length > 1 && args[1].equals("--parallel");
 
         String content = new String(Files.readAllBytes(Paths.get(srtFileName)));
         //String content = new String(Files.readAllBytes(Paths.get("/home/adam/dev/SRT_Master_Blaster/Pulp.test.srt")));
         //String content = new String(Files.readAllBytes(Paths.get(args[1])));
 
 
+        // Now build a Display State Table to map timings to display states so we can arbitrarily access them
+        DisplayStateTable stateTable = null;
         try {
-            tokeniser.tokenise(content);
+            if (parallel) {
+                // Big files (24 hour captures etc) get split up and parsed on all cores
+                try {
+                    stateTable = ParallelSrtParser.parse(content);
+                } catch (ParserException e) {
+                    // Go round again the serial way so a bad file is reported and handled just as without --parallel
+                }
+            }
+            if (stateTable == null) {
+                Tokeniser tokeniser = Tokeniser.srtTokeniser();
+                try {
+                    tokeniser.tokenise(content);
+                } catch (ParserException e) {
+                    System.out.println(e.getMessage());
+                }
+
+                stateTable = new DisplayStateTable(tokeniser.getTokens(), tokeniser.getTokens().size()/5);
+            }
         } catch (ParserException e) {
+            // The tokens don't make a sequence of subtitles, nothing we can play
             System.out.println(e.getMessage());
+            System.exit(1);
         }
 
-        // Now build a Display State Table to map timings to display states so we can arbitrarily access them
-        DisplayStateTable stateTable = new DisplayStateTable(tokeniser.getTokens(), tokeniser.getTokens().size()/5);
-
         // anounce to the world that we are ready to do this thing
         System.out.println("-------------- Starting --------------");
 
@@ -0,0 +1,121 @@
+package com.company;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Builds a DisplayStateTable from one very large SRT document (a season concatenated together, a 24 hour
+ * broadcast capture) by splitting it at cue boundaries and tokenising and parsing the pieces in parallel.
+ *
+ * A safe split point is the start of an index line that follows a blank line and is itself followed by a
+ * timestamp line, so no cue is ever cut in two. Each chunk is turned into display events on its own and
+ * the event lists are then stitched together in order, renumbered and indexed as one table.
+ */
+public class ParallelSrtParser {
+    // The Tokeniser does a lot of work per token proportional to what is left of its input, so keeping
+    // chunks smallish pays off even before we get any parallelism
+    static final int TARGET_CHUNK_CHARS = 32 * 1024;
+
+    public static DisplayStateTable parse(String content) {
+        return parse(content, ForkJoinPool.commonPool());
+    }
+
+    public static DisplayStateTable parse(String content, ForkJoinPool pool) {
+        // Enough chunks to keep every worker busy, but none bigger than the target
+        int chunkChars = Math.max(1024, Math.min(TARGET_CHUNK_CHARS, content.length() / pool.getParallelism() + 1));
+        List<String> chunks = split(content, chunkChars);
+
+        List<ForkJoinTask<ArrayList<DisplayEvent>>> tasks = new ArrayList<ForkJoinTask<ArrayList<DisplayEvent>>>(chunks.size());
+        for (final String chunk : chunks) {
+            tasks.add(pool.submit(new Callable<ArrayList<DisplayEvent>>() {
+                public ArrayList<DisplayEvent> call() {
+                    Tokeniser tokeniser = Tokeniser.srtTokeniser();
+                    tokeniser.tokenise(chunk);
+                    return DisplayStateTable.eventsFromTokens(tokeniser.getTokens());
+                }
+            }));
+        }
+
+        // Stitch the chunks back together, each one will have started its own initial silence if it had
+        // more than one subtitle so drop those and put back the single one a whole file parse would make
+        ArrayList<DisplayEvent> events = new ArrayList<DisplayEvent>();
+        events.add(null); // placeholder for the initial silence
+        for (ForkJoinTask<ArrayList<DisplayEvent>> task : tasks) {
+            List<DisplayEvent> chunkEvents = task.join(); // rethrows any ParserException from the chunk
+            int first = chunkEvents.get(0).seq == 0 ? 1 : 0;
+            events.addAll(chunkEvents.subList(first, chunkEvents.size()));
+        }
+
+        int sequence = 0;
+        if (events.size() > 3) { // more than one subtitle and its silence
+            SilenceEvent initialSilence = new SilenceEvent();
+            initialSilence.msecOffset = 0;
+            events.set(0, initialSilence);
+        } else {
+            events.remove(0);
+            sequence = 1;
+        }
+        for (DisplayEvent event : events) {
+            event.seq = sequence++;
+        }
+        return new DisplayStateTable(events, events.size() + 1);
+    }
+
+    // Cut the document into pieces of roughly chunkChars, only ever at the start of a cue
+    static List<String> split(String content, int chunkChars) {
+        List<String> chunks = new ArrayList<String>();
+        int start = 0;
+        while (start < content.length()) {
+            int end = content.length();
+            if (start + chunkChars < content.length()) {
+                end = nextCueStart(content, start + chunkChars);
+            }
+            chunks.add(content.substring(start, end));
+            start = end;
+        }
+        return chunks;
+    }
+
+    // Position of the first index line at or after from that starts a cue, or the end of the content
+    static int nextCueStart(String content, int from) {
+        int length = content.length();
+        for (int pos = content.indexOf('\n', from); pos >= 0 && pos < length; pos = content.indexOf('\n', pos + 1)) {
+            int lineStart = pos + 1;
+            if (followsBlankLine(content, pos) && isIndexLine(content, lineStart))
+                return lineStart;
+        }
+        return length;
+    }
+
+    // Is the line ending at the newline at pos empty (or just whitespace)
+    private static boolean followsBlankLine(String content, int pos) {
+        for (int i = pos - 1; i >= 0; i--) {
+            char c = content.charAt(i);
+            if (c == '\n')
+                return true;
+            if (!Character.isWhitespace(c))
+                return false;
+        }
+        return false;
+    }
+
+    // Digits, a line end, then a line starting like "00:01:02,345"
+    private static boolean isIndexLine(String content, int pos) {
+        int length = content.length();
+        int i = pos;
+        while (i < length && Character.isDigit(content.charAt(i)))
+            i++;
+        if (i == pos)
+            return false;
+        if (i < length && content.charAt(i) == '\r')
+            i++;
+        if (i >= length || content.charAt(i) != '\n')
+            return false;
+        i++;
+        return i + 2 < length && Character.isDigit(content.charAt(i)) && Character.isDigit(content.charAt(i + 1))
+                && content.charAt(i + 2) == ':';
+    }
+}
@@ -0,0 +1,157 @@
+package com.company;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput benchmark for QueryServer: starts a server over synthetic titles and hammers it from
+ * several clients, each keeping a number of batched frames in flight, then reports lookups per second
+ * and how many bytes the server workers allocated per lookup.
+ *
+ * Usage: QueryBenchmark [--clients N] [--workers N] [--batch N] [--pipeline N] [--titles N]
+ *                       [--text-every N] [--warmup secs] [--duration secs]
+ */
+public class QueryBenchmark {
+    int numClients = 4;
+    int numWorkers = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    int batch = 256;        // queries per frame
+    int pipeline = 8;       // frames in flight per client
+    int numTitles = 16;
+    int textEvery = 0;      // every Nth query asks for text too, 0 for never
+    long warmupMs = 3000;
+    long durationMs = 10000;
+
+    final AtomicLong lookups = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+    volatile boolean recording = false;
+    volatile boolean running = true;
+
+    private class Client implements Runnable {
+        final QueryClient client;
+        final Random random;
+        final long[] durations;
+
+        Client(int port, long seed, long[] durations) throws IOException {
+            this.client = new QueryClient(port);
+            this.random = new Random(seed);
+            this.durations = durations;
+        }
+
+        public void run() {
+            try {
+                int query = 0;
+                while (running) {
+                    for (int f = 0; f < pipeline; f++) {
+                        for (int q = 0; q < batch; q++) {
+                            int title = random.nextInt(numTitles);
+                            byte op = textEvery > 0 && ++query % textEvery == 0 ? QueryServer.OP_STATE_TEXT
+                                    : (q & 1) == 0 ? QueryServer.OP_STATE : QueryServer.OP_NEXT;
+                            client.add(op, title, (long) (random.nextDouble() * durations[title]));
+                        }
+                        client.flush();
+                    }
+                    for (int f = 0; f < pipeline; f++) {
+                        QueryClient.Response r = client.read();
+                        if (recording) {
+                            lookups.addAndGet(r.count);
+                            for (int i = 0; i < r.count; i++) {
+                                if (r.status[i] != QueryServer.STATUS_OK && r.status[i] != QueryServer.STATUS_NO_STATE)
+                                    failures.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Client failed: " + e.getMessage());
+            } finally {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private static long allocatedBytes(List<Thread> threads) {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        if (!(mx instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        long total = 0;
+        for (Thread t : threads) {
+            total += ((com.sun.management.ThreadMXBean) mx).getThreadAllocatedBytes(t.getId());
+        }
+        return total;
+    }
+
+    public void run() throws IOException, InterruptedException {
+        int textPerFrame = textEvery > 0 ? (batch + textEvery - 1) / textEvery : 0;
+        if (pipeline * QueryServer.worstCaseResponse(batch, textPerFrame) > QueryServer.OUT_BUFFER)
+            throw new IllegalArgumentException("Responses to " + pipeline + " frames of " + batch
+                    + " queries might not fit in the server's output buffer, use a smaller --pipeline or --batch");
+
+        TitleStore store = new TitleStore();
+        long[] durations = new long[numTitles];
+        for (int i = 0; i < numTitles; i++) {
+            DisplayStateTable table = store.register(i, "synthetic-" + i, SyntheticSrt.generate(1500, i));
+            durations[i] = table.getLastEvent().msecOffset + 5000;
+        }
+
+        QueryServer server = new QueryServer(store, 0, numWorkers);
+        Thread[] threads = new Thread[numClients];
+        for (int i = 0; i < numClients; i++) {
+            threads[i] = new Thread(new Client(server.getPort(), i, durations), "query-client-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+        System.out.printf("%d clients, %d server workers, %d queries per frame, %d frames in flight%n",
+                numClients, numWorkers, batch, pipeline);
+
+        Thread.sleep(warmupMs);
+        long allocBefore = allocatedBytes(server.getWorkerThreads());
+        long start = System.nanoTime();
+        recording = true;
+        Thread.sleep(durationMs);
+        recording = false;
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long allocAfter = allocatedBytes(server.getWorkerThreads());
+
+        running = false;
+        for (Thread t : threads) {
+            t.join(1000);
+        }
+        server.close();
+
+        long n = lookups.get();
+        System.out.printf("%d lookups in %.1fs: %.0f lookups/s, %.0f per server worker%n",
+                n, seconds, n / seconds, n / seconds / numWorkers);
+        if (allocBefore >= 0)
+            System.out.printf("server workers allocated %d bytes (%.4f bytes/lookup)%n",
+                    allocAfter - allocBefore, n == 0 ? 0.0 : (double) (allocAfter - allocBefore) / n);
+        if (failures.get() > 0)
+            System.out.println(failures.get() + " queries failed");
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        QueryBenchmark benchmark = new QueryBenchmark();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            int value = Integer.parseInt(args[i + 1]);
+            switch (args[i]) {
+                case "--clients": benchmark.numClients = value; break;
+                case "--workers": benchmark.numWorkers = value; break;
+                case "--batch": benchmark.batch = value; break;
+                case "--pipeline": benchmark.pipeline = value; break;
+                case "--titles": benchmark.numTitles = value; break;
+                case "--text-every": benchmark.textEvery = value; break;
+                case "--warmup": benchmark.warmupMs = value * 1000L; break;
+                case "--duration": benchmark.durationMs = value * 1000L; break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        benchmark.run();
+        System.exit(0);
+    }
+}
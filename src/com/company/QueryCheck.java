@@ -0,0 +1,115 @@
+package com.company;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Check that QueryServer answers OP_NEXT with when the display really next changes, compared against a
+ * brute force scan of every event in the title for the earliest one after the offset.
+ *
+ * Offsets are picked at random and right on or next to transitions, over titles with gaps between cues,
+ * with back to back cues (whose events are out of time order) and with a single cue (which has no initial
+ * silence, so no current state before it). Offsets past DisplayStateTable.MAX_OFFSET must come back as
+ * STATUS_NO_STATE. Exits with status 1 on any mismatch.
+ *
+ * Usage: QueryCheck [queries per title]
+ */
+public class QueryCheck {
+    static final int BATCH = 256;
+
+    private static int failures = 0;
+
+    public static void main(String[] args) throws IOException {
+        int queries = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+
+        TitleStore store = new TitleStore();
+        String[] names = {"gaps", "touching", "all touching", "two cues", "one cue"};
+        store.register(0, names[0], SyntheticSrt.generate(3000, 1));
+        store.register(1, names[1], SyntheticSrt.generate(3000, 2, 0.5));
+        store.register(2, names[2], SyntheticSrt.generate(500, 3, 1.0));
+        store.register(3, names[3], "1\n00:00:01,000 --> 00:00:02,000\nfirst\n\n2\n00:00:02,000 --> 00:00:03,000\nsecond\n");
+        store.register(4, names[4], "1\n00:00:05,000 --> 00:00:06,000\nonly\n");
+
+        QueryServer server = new QueryServer(store, 0, 1);
+        QueryClient client = new QueryClient(server.getPort());
+        try {
+            for (int title = 0; title < names.length; title++) {
+                check(names[title], title, store.get(title), client, queries);
+            }
+        } finally {
+            client.close();
+            server.close();
+        }
+
+        if (failures > 0) {
+            System.out.println("FAIL: " + failures + " mismatches");
+            System.exit(1);
+        }
+        System.out.println("PASS");
+    }
+
+    private static void check(String name, int titleId, DisplayStateTable table, QueryClient client, int queries)
+            throws IOException {
+        int last = table.getLastEvent().seq;
+        long end = table.getLastEvent().msecOffset + 2000;
+        Random random = new Random(name.hashCode());
+        long[] offsets = new long[BATCH];
+
+        int done = 0;
+        while (done < queries) {
+            int batch = Math.min(BATCH, queries - done);
+            for (int i = 0; i < batch; i++) {
+                // half random offsets, half right on or next to an event where the edge cases are
+                long offset;
+                if ((i & 1) == 0) {
+                    offset = (long) (random.nextDouble() * end);
+                } else {
+                    DisplayEvent event = table.getEvent(random.nextInt(last + 1));
+                    offset = Math.max(0, (event == null ? 0 : event.msecOffset) + random.nextInt(3) - 1);
+                }
+                offsets[i] = offset;
+                client.add(QueryServer.OP_NEXT, titleId, offset);
+            }
+            client.flush();
+            QueryClient.Response r = client.read();
+            for (int i = 0; i < batch; i++) {
+                long expected = nextTransition(table, last, offsets[i]);
+                long got = r.status[i] == QueryServer.STATUS_OK ? r.msecOffset[i]
+                        : r.status[i] == QueryServer.STATUS_NO_STATE ? -1 : -2;
+                if (got != expected)
+                    fail(name, "next after " + offsets[i] + " is " + got + ", should be " + expected);
+            }
+            done += batch;
+        }
+
+        // Offsets too big for the table's index are turned away, not answered with an error
+        long[] outOfRange = {DisplayStateTable.MAX_OFFSET + 1, 1000000000000L, Long.MAX_VALUE, -1};
+        for (long offset : outOfRange) {
+            client.add(QueryServer.OP_STATE, titleId, offset);
+            client.add(QueryServer.OP_NEXT, titleId, offset);
+        }
+        client.flush();
+        QueryClient.Response r = client.read();
+        for (int i = 0; i < r.count; i++) {
+            if (r.status[i] != QueryServer.STATUS_NO_STATE)
+                fail(name, "offset " + outOfRange[i / 2] + " got status " + r.status[i] + ", should be no state");
+        }
+        System.out.printf("%-14s last seq %5d, %d OP_NEXT queries%n", name, last, queries);
+    }
+
+    // Earliest event time after msecOffset by looking at every event, -1 if there isn't one
+    private static long nextTransition(DisplayStateTable table, int last, long msecOffset) {
+        long next = -1;
+        for (int seq = 0; seq <= last; seq++) {
+            DisplayEvent event = table.getEvent(seq);
+            if (event != null && event.msecOffset > msecOffset && (next < 0 || event.msecOffset < next))
+                next = event.msecOffset;
+        }
+        return next;
+    }
+
+    private static void fail(String name, String message) {
+        if (failures++ < 20)
+            System.out.println(name + ": " + message);
+    }
+}
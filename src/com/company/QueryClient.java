@@ -0,0 +1,157 @@
+package com.company;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Blocking client for QueryServer.
+ *
+ * Queries are queued into the current frame with add(), flush() sends it, and read() gets the next
+ * response back into a reusable Response. Several frames can be flushed before reading any of them
+ * to keep the connection busy, as long as the responses to them are sure to fit in the server's output
+ * buffer (see QueryServer), flush() refuses to go past that. Not thread safe, use one client per thread.
+ */
+public class QueryClient implements Closeable {
+    private final SocketChannel channel;
+    private final ByteBuffer request = ByteBuffer.allocateDirect(QueryServer.IN_BUFFER);
+    private final ByteBuffer response = ByteBuffer.allocateDirect(QueryServer.OUT_BUFFER);
+    private final Response result = new Response();
+    private int count = 0;
+    private int textCount = 0;
+    private int nextRequestId = 0;
+    // worst case response size of each frame in flight, oldest first, so we never ask for more than fits
+    private final int[] inFlight = new int[4096];
+    private int inFlightHead = 0;
+    private int inFlightCount = 0;
+    private int inFlightBytes = 0;
+
+    // The answers to one request frame, overwritten by the next read()
+    public static class Response {
+        public int requestId;
+        public int count;
+        public final byte[] status = new byte[QueryServer.MAX_QUERIES];
+        public final boolean[] isSilence = new boolean[QueryServer.MAX_QUERIES];
+        public final int[] seq = new int[QueryServer.MAX_QUERIES];
+        public final long[] msecOffset = new long[QueryServer.MAX_QUERIES];
+        public final String[] text = new String[QueryServer.MAX_QUERIES]; // only for OP_STATE_TEXT queries
+    }
+
+    public QueryClient(int port) throws IOException {
+        channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        response.flip(); // nothing to read yet
+        startFrame();
+    }
+
+    // Queue a query in the current frame, returns its index in the Response
+    public int add(byte op, int titleId, long msecOffset) {
+        if (count == QueryServer.MAX_QUERIES)
+            throw new IllegalStateException("Frame full, flush first");
+        if (op == QueryServer.OP_STATE_TEXT)
+            textCount++;
+        request.put(op);
+        request.putInt(titleId);
+        request.putLong(msecOffset);
+        return count++;
+    }
+
+    // Send the current frame, returns its request id
+    public int flush() throws IOException {
+        int worstCase = QueryServer.worstCaseResponse(count, textCount);
+        if (inFlightBytes + worstCase > QueryServer.OUT_BUFFER || inFlightCount == inFlight.length)
+            throw new IllegalStateException("Too many responses outstanding, read() some first");
+        inFlight[(inFlightHead + inFlightCount++) % inFlight.length] = worstCase;
+        inFlightBytes += worstCase;
+
+        int requestId = nextRequestId++;
+        request.putInt(0, request.position() - 4);
+        request.putInt(4, requestId);
+        request.putShort(8, (short) count);
+        request.flip();
+        while (request.hasRemaining()) {
+            channel.write(request);
+        }
+        startFrame();
+        return requestId;
+    }
+
+    // Wait for the next response frame
+    public Response read() throws IOException {
+        fill(4);
+        int length = response.getInt();
+        fill(length);
+        if (inFlightCount > 0) {
+            inFlightBytes -= inFlight[inFlightHead];
+            inFlightHead = (inFlightHead + 1) % inFlight.length;
+            inFlightCount--;
+        }
+        result.requestId = response.getInt();
+        result.count = response.getShort() & 0xffff;
+        for (int i = 0; i < result.count; i++) {
+            result.status[i] = response.get();
+            byte flags = response.get();
+            result.isSilence[i] = (flags & QueryServer.FLAG_SILENCE) != 0;
+            result.seq[i] = response.getInt();
+            result.msecOffset[i] = response.getLong();
+            result.text[i] = null;
+            if ((flags & QueryServer.FLAG_TEXT) != 0) {
+                byte[] utf8 = new byte[response.getShort() & 0xffff];
+                response.get(utf8);
+                result.text[i] = new String(utf8, StandardCharsets.UTF_8);
+            }
+        }
+        return result;
+    }
+
+    // One off query for the display state at msecOffset, with its text. Not for use with frames in flight
+    public DisplayEvent getDisplayState(int titleId, long msecOffset) throws IOException {
+        add(QueryServer.OP_STATE_TEXT, titleId, msecOffset);
+        flush();
+        Response r = read();
+        if (r.status[0] != QueryServer.STATUS_OK)
+            return null;
+        DisplayEvent event = r.isSilence[0] ? new SilenceEvent() : new SubtitleEvent();
+        event.seq = r.seq[0];
+        event.msecOffset = r.msecOffset[0];
+        event.text = r.text[0];
+        return event;
+    }
+
+    // One off query for when the display next changes after msecOffset, -1 if it never does
+    public long getNextTransition(int titleId, long msecOffset) throws IOException {
+        add(QueryServer.OP_NEXT, titleId, msecOffset);
+        flush();
+        Response r = read();
+        return r.status[0] == QueryServer.STATUS_OK ? r.msecOffset[0] : -1;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void startFrame() {
+        request.clear();
+        request.position(QueryServer.FRAME_HEADER);
+        count = 0;
+        textCount = 0;
+    }
+
+    // Make sure at least n bytes are waiting in the response buffer
+    private void fill(int n) throws IOException {
+        if (response.remaining() >= n)
+            return;
+        response.compact();
+        while (response.position() < n) {
+            if (channel.read(response) < 0)
+                throw new EOFException("Query server closed the connection");
+        }
+        response.flip();
+    }
+}
@@ -0,0 +1,386 @@
+package com.company;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non blocking loopback server answering "what is on screen at t for title X" and "when does it next
+ * change" for players running outside the JVM, from the tables in a shared TitleStore.
+ *
+ * The protocol is binary and big endian. A request frame is
+ *     int length (of the rest of the frame), int requestId, short count, then count queries of
+ *     byte op, int titleId, long msecOffset
+ * and the matching response frame is
+ *     int length, int requestId, short count, then count results of
+ *     byte status, byte flags, int seq, long msecOffset [, short textLength, UTF-8 text if FLAG_TEXT]
+ * Clients may send frames without waiting for earlier answers (pipelining), responses come back in
+ * order. As we stop reading from a client whose responses are backing up, a client must not have more
+ * than OUT_BUFFER bytes of (worst case) responses outstanding or both ends can end up blocked writing.
+ * A frame holds at most MAX_QUERIES queries, of which around MAX_TEXT_QUERIES may ask for text.
+ *
+ * Each connection belongs to one of a few worker threads with its own Selector and reads and writes
+ * through its own pair of direct buffers, so answering queries allocates nothing. When a client isn't
+ * reading its responses we stop reading its requests until it catches up.
+ *
+ * Those buffers are IN_BUFFER + OUT_BUFFER, about 320KB of direct memory per open connection, held
+ * until it closes and not counted against the heap. By default the JVM allows as much direct memory
+ * as -Xmx, so with many players connected size it explicitly, e.g. -XX:MaxDirectMemorySize=512m for
+ * around 1500 connections. Past the limit new connections are closed as soon as they are accepted.
+ */
+public class QueryServer implements Closeable {
+    public static final byte OP_STATE = 0;        // event current at msecOffset
+    public static final byte OP_NEXT = 1;         // first event after msecOffset
+    public static final byte OP_STATE_TEXT = 2;   // as OP_STATE with the subtitle text
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_UNKNOWN_TITLE = 1;
+    public static final byte STATUS_NO_STATE = 2;  // nothing before / after msecOffset, or it is out of range
+    public static final byte STATUS_ERROR = 3;     // the table couldn't answer
+    public static final byte STATUS_BAD_OP = 4;
+
+    public static final byte FLAG_SILENCE = 1;
+    public static final byte FLAG_TEXT = 2;
+
+    static final int FRAME_HEADER = 10;  // length, requestId, count
+    static final int QUERY_SIZE = 13;
+    static final int RESULT_SIZE = 14;
+    static final int IN_BUFFER = 64 * 1024;
+    static final int OUT_BUFFER = 256 * 1024;
+    public static final int MAX_TEXT_BYTES = 1024; // longer subtitle text is cut short
+    public static final int MAX_QUERIES = (IN_BUFFER - FRAME_HEADER) / QUERY_SIZE;
+    public static final int MAX_TEXT_QUERIES = (OUT_BUFFER - FRAME_HEADER - MAX_QUERIES * RESULT_SIZE) / (2 + MAX_TEXT_BYTES);
+
+    // Most bytes the answer to a frame of count queries can take
+    static int worstCaseResponse(int count, int textQueries) {
+        return FRAME_HEADER + count * RESULT_SIZE + textQueries * (2 + MAX_TEXT_BYTES);
+    }
+
+    private final TitleStore store;
+    private final ServerSocketChannel serverChannel;
+    private final Worker[] workers;
+    private final Thread acceptor;
+    private volatile boolean running = true;
+
+    public QueryServer(TitleStore store, int port, int numWorkers) throws IOException {
+        this.store = store;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+
+        workers = new Worker[numWorkers];
+        for (int i = 0; i < numWorkers; i++) {
+            workers[i] = new Worker(i);
+            workers[i].thread.start();
+        }
+        acceptor = new Thread(new Runnable() {
+            public void run() {
+                acceptLoop();
+            }
+        }, "query-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    List<Thread> getWorkerThreads() {
+        List<Thread> threads = new ArrayList<Thread>();
+        for (Worker worker : workers) {
+            threads.add(worker.thread);
+        }
+        return threads;
+    }
+
+    public void close() throws IOException {
+        running = false;
+        serverChannel.close();
+        for (Worker worker : workers) {
+            worker.selector.wakeup();
+        }
+        try {
+            acceptor.join(1000);
+            for (Worker worker : workers) {
+                worker.thread.join(1000);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void acceptLoop() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Worker worker = workers[next++ % workers.length];
+                worker.pending.add(channel);
+                worker.selector.wakeup();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                if (running)
+                    System.out.println("Query server accept failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        final ConcurrentLinkedQueue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+
+        Worker(int n) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "query-worker-" + n);
+            thread.setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    SocketChannel channel;
+                    while ((channel = pending.poll()) != null) {
+                        Connection connection;
+                        try {
+                            connection = new Connection(channel);
+                        } catch (OutOfMemoryError e) {
+                            // out of direct memory for its buffers, turn this one away rather than lose the worker
+                            System.out.println("Query server refused a connection: " + e.getMessage());
+                            channel.close();
+                            continue;
+                        }
+                        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable())
+                                connection.read();
+                            if (key.isValid() && key.isWritable())
+                                connection.write();
+                        } catch (IOException e) {
+                            connection.close();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Query server worker failed: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+        final ByteBuffer in = ByteBuffer.allocateDirect(IN_BUFFER);   // filling, flipped only while processing
+        final ByteBuffer out = ByteBuffer.allocateDirect(OUT_BUFFER); // filling, flipped only while writing
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            serve();
+        }
+
+        void write() throws IOException {
+            serve();
+        }
+
+        // Answer and send until we run out of complete frames or the client stops taking responses.
+        // If the responses all went, frames we held back for lack of room are answered straight away
+        // rather than left in the buffer until the client happens to send something else
+        void serve() throws IOException {
+            boolean heldBack;
+            do {
+                heldBack = process();
+                flush();
+            } while (heldBack && out.position() == 0);
+        }
+
+        // Answer every complete frame we have room to answer, true if we stopped for want of room
+        boolean process() throws IOException {
+            in.flip();
+            try {
+                while (in.remaining() >= 4) {
+                    int start = in.position();
+                    int length = in.getInt(start);
+                    if (length < FRAME_HEADER - 4 || length > IN_BUFFER - 4)
+                        throw new IOException("Bad frame length " + length);
+                    if (in.remaining() < length + 4)
+                        break; // rest of the frame is still on its way
+
+                    int count = in.getShort(start + 8) & 0xffff;
+                    if (length != FRAME_HEADER - 4 + count * QUERY_SIZE)
+                        throw new IOException("Frame length " + length + " doesn't match " + count + " queries");
+                    int textQueries = 0;
+                    for (int i = 0; i < count; i++) {
+                        if (in.get(start + FRAME_HEADER + i * QUERY_SIZE) == OP_STATE_TEXT)
+                            textQueries++;
+                    }
+                    int worstCase = worstCaseResponse(count, textQueries);
+                    if (worstCase > OUT_BUFFER)
+                        throw new IOException("Too many text queries in one frame: " + textQueries);
+                    if (worstCase > out.remaining())
+                        return true; // wait for the client to take some responses
+
+                    int requestId = in.getInt(start + 4);
+                    in.position(start + FRAME_HEADER);
+                    answer(requestId, count);
+                }
+                return false;
+            } finally {
+                in.compact();
+            }
+        }
+
+        void answer(int requestId, int count) {
+            int lengthPos = out.position();
+            out.putInt(0);
+            out.putInt(requestId);
+            out.putShort((short) count);
+            for (int i = 0; i < count; i++) {
+                byte op = in.get();
+                int titleId = in.getInt();
+                long msecOffset = in.getLong();
+                answerQuery(op, store.get(titleId), msecOffset);
+            }
+            out.putInt(lengthPos, out.position() - lengthPos - 4);
+        }
+
+        void answerQuery(byte op, DisplayStateTable table, long msecOffset) {
+            if (table == null) {
+                putResult(STATUS_UNKNOWN_TITLE, null, false);
+                return;
+            }
+            if (msecOffset < 0 || msecOffset > DisplayStateTable.MAX_OFFSET) {
+                // Past the table's index the lookup would throw, and building that exception for every
+                // such query would let a client make us allocate at will
+                putResult(STATUS_NO_STATE, null, false);
+                return;
+            }
+            try {
+                switch (op) {
+                    case OP_STATE:
+                        putResult(STATUS_OK, table.getDisplayState(msecOffset), false);
+                        break;
+                    case OP_NEXT:
+                        putResult(STATUS_OK, table.getNextEvent(msecOffset), false);
+                        break;
+                    case OP_STATE_TEXT:
+                        putResult(STATUS_OK, table.getDisplayState(msecOffset), true);
+                        break;
+                    default:
+                        putResult(STATUS_BAD_OP, null, false);
+                        break;
+                }
+            } catch (DisplayStateTable.DisplayStateException e) {
+                putResult(STATUS_ERROR, null, false);
+            } catch (RuntimeException e) {
+                // Backstop only, don't let one query take the worker down
+                putResult(STATUS_ERROR, null, false);
+            }
+        }
+
+        void putResult(byte status, DisplayEvent event, boolean withText) {
+            if (status == STATUS_OK && event == null)
+                status = STATUS_NO_STATE;
+            out.put(status);
+            if (status == STATUS_OK) {
+                out.put((byte) ((event.isSilence ? FLAG_SILENCE : 0) | (withText ? FLAG_TEXT : 0)));
+                out.putInt(event.seq);
+                out.putLong(event.msecOffset);
+                if (withText)
+                    putText(event.text);
+            } else {
+                out.put((byte) 0);
+                out.putInt(-1);
+                out.putLong(-1);
+            }
+        }
+
+        // UTF-8 encode straight into the output buffer, cut short at MAX_TEXT_BYTES on a character boundary
+        void putText(String text) {
+            int lengthPos = out.position();
+            out.putShort((short) 0);
+            int limit = lengthPos + 2 + MAX_TEXT_BYTES;
+            for (int i = 0; i < text.length(); i++) {
+                int c = text.charAt(i);
+                if (Character.isHighSurrogate((char) c) && i + 1 < text.length()
+                        && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    c = Character.toCodePoint((char) c, text.charAt(++i));
+                }
+                int size = c < 0x80 ? 1 : c < 0x800 ? 2 : c < 0x10000 ? 3 : 4;
+                if (out.position() + size > limit)
+                    break;
+                if (size == 1) {
+                    out.put((byte) c);
+                } else if (size == 2) {
+                    out.put((byte) (0xc0 | (c >> 6)));
+                    out.put((byte) (0x80 | (c & 0x3f)));
+                } else if (size == 3) {
+                    out.put((byte) (0xe0 | (c >> 12)));
+                    out.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                    out.put((byte) (0x80 | (c & 0x3f)));
+                } else {
+                    out.put((byte) (0xf0 | (c >> 18)));
+                    out.put((byte) (0x80 | ((c >> 12) & 0x3f)));
+                    out.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                    out.put((byte) (0x80 | (c & 0x3f)));
+                }
+            }
+            out.putShort(lengthPos, (short) (out.position() - lengthPos - 2));
+        }
+
+        // Send what we can, and only listen for more requests once everything has gone
+        void flush() throws IOException {
+            out.flip();
+            channel.write(out);
+            boolean drained = !out.hasRemaining();
+            out.compact();
+            if (key.isValid())
+                key.interestOps(drained ? SelectionKey.OP_READ : SelectionKey.OP_WRITE);
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
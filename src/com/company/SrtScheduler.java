@@ -1,9 +1,8 @@
 package com.company;
 
-import java.util.Date;
 import java.util.LinkedList;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Created by adam on 15/01/17.
@@ -11,50 +10,29 @@ import java.util.TimerTask;
 public class SrtScheduler {
 
     private SubtitleSequence srtSequence;
-    private Timer timer = new Timer(true); // Create just one and make it a daemon thread.
 
     public SrtScheduler(SubtitleSequence srtSequence) {
         this.srtSequence = srtSequence;
     }
 
-    class Notifier extends TimerTask {
-        public void run() {
-            notifyAll();
+    // Park this thread until the wall clock reaches time (epoch milliseconds)
+    // Plain arithmetic on longs rather than a Date and TimerTask per cue so there is nothing to collect
+    // Returns false if the thread was interrupted before then, with the interrupt flag still set
+    public boolean waitUntil(long time) {
+        long wait;
+        while ((wait = time - System.currentTimeMillis()) > 0) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(wait));
+            if (Thread.currentThread().isInterrupted())
+                return false;
         }
+        return true;
     }
 
-    public void waitUntil(Date date) {
-        final Object o = new Object();
-        TimerTask tt = new TimerTask() {
-        public void run() {
-            synchronized (o) {
-                o.notify();
-                }
-            }
-        };
-        timer.schedule(tt, date);
-        synchronized(o) {
-            try {
-                o.wait();
-            } catch (InterruptedException ie) {}
-        }
-        //timer.cancel();
-        timer.purge();
-    }
-
-    public synchronized boolean syncTimer(Date syncTime) {
-        Timer srtTimer = new Timer();
-        Notifier notifier = new Notifier();
-        srtTimer.schedule(notifier, syncTime);
-        long timediff;
-        do {
-            try {
-                wait();
-            } catch (InterruptedException e) {}
-
-            Date now = new Date();
-            timediff = now.getTime() - syncTime.getTime();
-        } while (timediff > 1000);
+    // Wait for syncTime and report whether we woke within a second of it, false if interrupted
+    public boolean syncTimer(long syncTime) {
+        if (!waitUntil(syncTime))
+            return false;
+        long timediff = System.currentTimeMillis() - syncTime;
 
         if (timediff > -1000 && timediff < 1000)
             return true;
@@ -63,17 +41,19 @@ public class SrtScheduler {
     }
 
     public void schedule() {
-        Date startSequence = new Date();
+        long startSequence = System.currentTimeMillis();
         LinkedList<SubtitleSequence.Subtitle> subtitles = this.srtSequence.getSubtitles();
 
         for (SubtitleSequence.Subtitle sub : subtitles) {
-            Date displayTime = new Date(startSequence.getTime() + sub.startTime);
-            Date endTime = new Date(startSequence.getTime() + sub.endTime);
+            long displayTime = startSequence + sub.startTime;
+            long endTime = startSequence + sub.endTime;
 
-            waitUntil(displayTime);
+            if (!waitUntil(displayTime))
+                return;
             System.out.println(sub.text);
 
-            waitUntil(endTime);
+            if (!waitUntil(endTime))
+                return;
             System.out.println("------------");
 
             /*
@@ -81,7 +61,6 @@ public class SrtScheduler {
                 System.out.println(sub.text);
             }
 
-            Date endTime = new Date(startSequence.getTime() + sub.endTime);
             if (syncTimer(endTime)) {
                 System.out.println("----------------");
             }
@@ -1,63 +1,80 @@
 package com.company;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Created by adam on 20/01/17.
  */
 public class SubtitleSequencer {
-    private Timer timer;
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
     private AvTracker tracker;
     private DisplayStateTable stateTable;
+    private Output output;
+    private DisplayEvent currentEvent = new DisplayEvent();
+
+    // Where display changes get sent, the console by default
+    public interface Output {
+        void show(DisplayEvent event);
+    }
+
+    private static class ConsoleOutput implements Output {
+        public void show(DisplayEvent event) {
+            if (event.isSilence) {
+                System.out.println("<                         >");
+            } else {
+                System.out.println(event.text);
+                System.out.println("---------------------------");
+            }
+        }
+    }
 
     public SubtitleSequencer(AvTracker tracker, DisplayStateTable stateTable) {
-        timer = new Timer(true); // Create just one and make it a daemon thread.
+        this(tracker, stateTable, new ConsoleOutput());
+    }
+
+    public SubtitleSequencer(AvTracker tracker, DisplayStateTable stateTable, Output output) {
         this.tracker = tracker;
         this.stateTable = stateTable;
+        this.output = output;
     }
 
-    public void display() {
-        final Object o = new Object();
-        TimerTask tt = new TimerTask() {
-            public void run() {
-                synchronized (o) {
-                    o.notify();
-                }
-            }
-        };
-        DisplayEvent currentEvent = new DisplayEvent();
+    // Check the display state for the current AV time and send it to the output if it has changed
+    // Returns the new event if there was a change, null otherwise
+    public DisplayEvent tick() throws DisplayStateTable.DisplayStateException {
+        DisplayEvent newEvent = stateTable.getDisplayState(tracker.getAvMilliseconds());
 
-        // Every tenth of a second, wake up the main thread to check if we need to print a subtitle
-        timer.scheduleAtFixedRate(tt, 0, 100);
+        // null before the first subtitle of a table with no initial silence, nothing to show yet
+        if (newEvent != null && newEvent.seq != currentEvent.seq) {
+            output.show(newEvent);
+            currentEvent = newEvent;
+            return newEvent;
+        }
+        return null;
+    }
+
+    // Every tenth of a second, check if we need to print a subtitle
+    // Ticks are paced off the nanosecond clock with the thread parked in between, so once running the
+    // loop allocates nothing and needs no timer thread. Interrupting the thread stops the display
+    public void display() {
+        long nextTick = System.nanoTime();
         try {
             while (true) {
-                synchronized (o) {
-                    try {
-                        o.wait();
-                    } catch (InterruptedException ie) {
-                    }
+                long wait;
+                while ((wait = nextTick - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                    if (Thread.currentThread().isInterrupted())
+                        return; // parkNanos won't block again with the flag set, leave it for our caller
                 }
+                nextTick += TICK_NANOS;
                 //System.out.print(">");
-                DisplayEvent newEvent = stateTable.getDisplayState(tracker.getAvMilliseconds());
-
-                if (newEvent.seq != currentEvent.seq) {
-                    if (newEvent.isSilence) {
-                        System.out.println("<                         >");
-                    } else {
-                        System.out.println(newEvent.text);
-                        System.out.println("---------------------------");
-                    }
-                    currentEvent = newEvent;
-                }
+                tick();
             }
         }
 
         catch (Exception e) {
             System.out.println("Crap! " + e.toString());
         }
-
-        timer.cancel();
-        timer.purge();
     }
 }
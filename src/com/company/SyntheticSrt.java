@@ -0,0 +1,52 @@
+package com.company;
+
+import java.util.Random;
+
+/**
+ * Generates well formed SRT documents of any size for load tests and benchmarks
+ * when there isn't a real corpus to hand.
+ */
+public class SyntheticSrt {
+    private static final String[] words = {
+            "the", "gun", "Vincent", "royale", "with", "cheese", "say", "what", "again", "English",
+            "do", "you", "speak", "it", "briefcase", "tasty", "Zed's", "dead", "baby", "okay"
+    };
+
+    public static String timestamp(long msecs) {
+        return String.format("%02d:%02d:%02d,%03d", msecs / 3600000, (msecs / 60000) % 60, (msecs / 1000) % 60, msecs % 1000);
+    }
+
+    // numCues subtitles with random gaps, durations and one or two lines of text, starting after a short silence
+    public static String generate(int numCues, long seed) {
+        return generate(numCues, seed, 0.0);
+    }
+
+    // As above, but with touchingChance of each cue starting on the very millisecond the previous one ends,
+    // as real SRTs often do. The silence between them then comes after the next cue has started
+    public static String generate(int numCues, long seed, double touchingChance) {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder(numCues * 64);
+        long t = 1000 + random.nextInt(5000);
+        for (int i = 1; i <= numCues; i++) {
+            long end = t + 800 + random.nextInt(4000);
+            sb.append(i).append('\n');
+            sb.append(timestamp(t)).append(" --> ").append(timestamp(end)).append('\n');
+            int lines = 1 + random.nextInt(2);
+            for (int l = 0; l < lines; l++) {
+                int numWords = 2 + random.nextInt(6);
+                for (int w = 0; w < numWords; w++) {
+                    if (w > 0)
+                        sb.append(' ');
+                    sb.append(words[random.nextInt(words.length)]);
+                }
+                sb.append('\n');
+            }
+            sb.append('\n');
+            if (touchingChance > 0 && random.nextDouble() < touchingChance)
+                t = end;
+            else
+                t = end + 1 + random.nextInt(3000);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,49 @@
+package com.company;
+
+/**
+ * Shared in-process lookup from a numeric title id to its DisplayStateTable, for serving many titles
+ * to out of process players by id.
+ *
+ * Reads are a plain array index with no locking, boxing or allocation. Registering a title copies the
+ * array, which is fine as titles come and go far less often than they are looked up.
+ */
+public class TitleStore {
+    public static final int MAX_TITLE_ID = (1 << 24) - 1; // ids index an array so keep them dense
+
+    private volatile DisplayStateTable[] tables = new DisplayStateTable[16];
+
+    public synchronized void register(int titleId, DisplayStateTable table) {
+        if (titleId < 0 || titleId > MAX_TITLE_ID)
+            throw new IllegalArgumentException("Title id out of range: " + titleId);
+        int length = tables.length;
+        while (length <= titleId)
+            length *= 2;
+        DisplayStateTable[] copy = new DisplayStateTable[length];
+        System.arraycopy(tables, 0, copy, 0, tables.length);
+        copy[titleId] = table;
+        tables = copy;
+    }
+
+    // Build (or share, if another session already has it) the table through the shared cache and register it
+    public DisplayStateTable register(int titleId, String path, String content) {
+        DisplayStateTable table = DisplayStateTableCache.getShared().get(path, content);
+        register(titleId, table);
+        return table;
+    }
+
+    public synchronized void remove(int titleId) {
+        if (titleId >= 0 && titleId < tables.length) {
+            DisplayStateTable[] copy = tables.clone();
+            copy[titleId] = null;
+            tables = copy;
+        }
+    }
+
+    // null if there is no such title
+    public DisplayStateTable get(int titleId) {
+        DisplayStateTable[] current = tables;
+        if (titleId < 0 || titleId >= current.length)
+            return null;
+        return current[titleId];
+    }
+}
@@ -41,6 +41,16 @@ public class Tokeniser
         tokens = new LinkedList<Token>();
     }
 
+    // A tokeniser set up with the token types the SRT parsers expect
+    public static Tokeniser srtTokeniser() {
+        Tokeniser tokeniser = new Tokeniser();
+        tokeniser.add("[1-9][0-9]*[\\r\\n]", 1); // index
+        tokeniser.add("[0-9][0-9]:[0-9][0-9]:[0-9][0-9],[0-9][0-9][0-9]", 2); // timestamp
+        tokeniser.add("-->", 3); // span
+        tokeniser.add("[\\S ]+", 4); // text
+        return tokeniser;
+    }
+
     public void add(String regex, int token) {
         tokenInfos.add(
                 new TokenInfo(